@@ -0,0 +1,563 @@
+/*
+ * Copies a world into a staging folder and publishes it as a finished backup.
+ * Every copied file is written to a journal so an interrupted backup can resume.
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class MBMBackup{
+
+   //Names of the staging folder and journal inside a world's backup folder
+   //Both contain a '.' so they are never offered as a backup to restore
+   public static final String stagingName = "backup.partial";
+   public static final String journalName = "backup.journal";
+
+   //How many times a file that keeps changing is copied again, and how many checking passes are made
+   public static final int maxRetries = 3;
+
+   //The Minecraft world file being backed up
+   private File worldFile;
+
+   //The folder that holds every backup of the world
+   private File backupsDir;
+
+   //The folder the backup is written into until it is complete
+   private File staging;
+
+   //Journal of the files that have been copied and verified
+   private File journal;
+
+   //Entries loaded from the journal, relative path -> "size, modified, written"
+   private HashMap<String, String> copied = new HashMap<String, String>();
+
+   //Writer used to append to the journal
+   private BufferedWriter journalWriter;
+
+   //Number of files skipped because an earlier run already copied them
+   private int resumedFiles = 0;
+
+   //Whether files are encrypted as they are copied
+   private boolean encrypt = false;
+
+   //Encrypts files for this backup, null when not encrypting
+   private MBMCrypto crypto;
+
+   //Whether files changed during the backup are found and copied again
+   private boolean consistent = false;
+
+   //True while checking the staged files against the world after the first pass
+   private boolean verifying = false;
+
+   //Number of files copied during the current pass
+   private int copiedFiles = 0;
+
+   //Number of times a file was copied again because it changed while being backed up
+   private int recopiedFiles = 0;
+
+   //Whether the finished backup was found to match the world
+   private boolean consistentCopy = false;
+
+   //Whether region files are rewritten with their free space dropped
+   private boolean compact = false;
+
+   //Whether chunks no player has spent time in are left out of compacted region files
+   private boolean skipUninhabited = false;
+
+   //Bytes saved by compacting region files
+   private long savedBytes = 0;
+
+   //Bytes saved by compacting each journaled file, relative path -> bytes, so a file copied again replaces its old saving
+   private HashMap<String, Long> savedByFile = new HashMap<String, Long>();
+
+   //Bytes saved by compacting the file copied last
+   private long lastSaved = 0;
+
+   //Information written next to the finished backup in <backup name>.MBM
+   private LinkedHashMap<String, String> info = new LinkedHashMap<String, String>();
+
+   /**
+    * Constructor, creates a backup of a world
+    * @param worldFile the Minecraft world file to be backed up
+    * @param backupsDir the folder that holds every backup of the world
+    */
+   public MBMBackup(File worldFile, File backupsDir){
+      this.worldFile = worldFile;
+      this.backupsDir = backupsDir;
+      staging = new File(backupsDir, stagingName);
+      journal = new File(backupsDir, journalName);
+   }
+
+   /**
+    * Set whether files are encrypted as they are copied
+    * @param encrypt true to encrypt the backup
+    */
+   public void setEncrypted(boolean encrypt){
+      this.encrypt = encrypt;
+   }
+
+   /**
+    * Set whether files changed during the backup are found and copied again. Each file's size and
+    * modified time are checked before and after it is copied, and the staged files are checked against
+    * the world again at the end, so a world can be backed up while it is being saved.
+    * @param consistent true to check the backup
+    */
+   public void setConsistent(boolean consistent){
+      this.consistent = consistent;
+   }
+
+   /**
+    * Set whether region files are rewritten with their chunks packed together and free sectors dropped
+    * @param compact true to compact region files
+    * @param skipUninhabited true to also leave out chunks no player has ever spent time in
+    */
+   public void setCompacted(boolean compact, boolean skipUninhabited){
+      this.compact = compact;
+      this.skipUninhabited = skipUninhabited;
+   }
+
+   /**
+    * Get the number of bytes saved by compacting region files. Files skipped because an
+    * earlier run already copied them are not counted.
+    * @return bytes saved
+    */
+   public long getSavedBytes(){
+      return savedBytes;
+   }
+
+   /**
+    * Find out if the last backup was checked and found to match the world
+    * @return true if the backup is consistent
+    */
+   public boolean isConsistent(){
+      return consistentCopy;
+   }
+
+   /**
+    * Copy the world into the staging folder, resuming an earlier attempt if there is one,
+    * then publish it under its final name
+    * @param backupName the name of the finished backup folder
+    * @return the finished backup folder
+    */
+   public File run(String backupName) throws IOException {
+      Files.createDirectories(backupsDir.toPath());
+      String mode = loadJournal();
+
+      //Only resume a staging folder that was written the same way
+      if(isSameMode(mode) == false){
+         deleteDirectory(staging);
+         journal.delete();
+         copied.clear();
+         mode = null;
+      }
+
+      if(encrypt){
+         crypto = new MBMCrypto(mode != null ? MBMCrypto.fromHex(mode.substring(mode.lastIndexOf('\t') + 1)) : MBMCrypto.newSalt());
+      }
+
+      journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8"));
+      try{
+         if(mode == null){
+            journalWriter.write("MBMJOURNAL\t" + layout() + "\t" + (encrypt ? "aes\t" + MBMCrypto.toHex(crypto.getSalt()) : "plain"));
+            journalWriter.newLine();
+            journalWriter.flush();
+         }
+
+         File sessionLock = new File(worldFile, "session.lock");
+         long sessionModified = sessionLock.lastModified();
+         boolean inUse = consistent && isWorldInUse(sessionLock);
+
+         copyDirectory(worldFile, staging, "");
+
+         //Walk the world again and copy anything that changed since it was copied,
+         //the backup is consistent once a pass finds nothing left to copy
+         if(consistent){
+            verifying = true;
+            for(int pass = 0; pass < maxRetries && consistentCopy == false; pass++){
+               copiedFiles = 0;
+               copyDirectory(worldFile, staging, "");
+               consistentCopy = copiedFiles == 0;
+            }
+
+            //A new session opening the world part way through can rewrite more than we can see
+            if(sessionLock.lastModified() != sessionModified){
+               consistentCopy = false;
+            }
+            info.put("inUse", String.valueOf(inUse));
+         }
+      } finally{
+         journalWriter.close();
+      }
+
+      info.put("version", MBMDriver.version);
+      info.put("encrypted", String.valueOf(encrypt));
+      info.put("consistent", consistent ? String.valueOf(consistentCopy) : "unchecked");
+      info.put("recopied", String.valueOf(recopiedFiles));
+      if(compact){
+         info.put("compactSaved", String.valueOf(savedBytes));
+      }
+      if(crypto != null){
+         //Restore checks these so files added, removed or swapped in the finished backup are found
+         info.put("salt", MBMCrypto.toHex(crypto.getSalt()));
+         info.put("fileList", crypto.listDigest(staging));
+      }
+      writeInfo(new File(backupsDir, backupName + ".MBM"));
+
+      //The backup only becomes visible once every file is in place
+      File target = new File(backupsDir, backupName);
+      Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      writeManifest(target, new File(backupsDir, backupName + ".manifest"));
+      journal.delete();
+      return target;
+   }
+
+   /**
+    * Keep a list of the world's files as they were when they were copied, for planning later backups.
+    * The finished backup is walked and each file's size and modified time in the world are taken
+    * from the journal. The backup is already published, so a failure is only reported.
+    * @param target the finished backup folder
+    * @param manifest the manifest file to write
+    */
+   private void writeManifest(File target, File manifest){
+      try{
+         MBMManifest.write(target, manifest, new MBMManifest.Source(){
+            public long[] stat(String path, File file){
+               //session.lock only belongs to the running game
+               String entry = copied.get(path);
+               if(entry == null || path.equals("session.lock")){
+                  return null;
+               }
+               //0 = source size
+               //1 = source modified time
+               String[] result = entry.split("\t", 3);
+               return new long[]{ Long.parseLong(result[0]), Long.parseLong(result[1]) };
+            }
+         });
+      } catch(IOException | NumberFormatException e){
+         System.out.println(e);
+      }
+   }
+
+   /**
+    * Get the number of files that were already copied by an interrupted run
+    * @return number of files skipped
+    */
+   public int getResumedFiles(){
+      return resumedFiles;
+   }
+
+   /**
+    * Read the information saved next to a finished backup
+    * @param backupsDir the folder that holds every backup of the world
+    * @param backupName the name of the backup folder
+    * @return the saved information, empty for backups made before it was kept
+    */
+   public static HashMap<String, String> readInfo(File backupsDir, String backupName){
+      HashMap<String, String> result = new HashMap<String, String>();
+      File file = new File(backupsDir, backupName + ".MBM");
+      if(file.exists() == false){
+         return result;
+      }
+
+      try(BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))){
+         String line = br.readLine();
+         while(line != null){
+            int split = line.indexOf(':');
+            if(split > 0){
+               result.put(line.substring(0, split), line.substring(split + 1));
+            }
+            line = br.readLine();
+         }
+      } catch(IOException e){
+         System.out.println(e);
+      }
+      return result;
+   }
+
+   /**
+    * Write the information about the backup
+    * @param file the file to write to
+    */
+   private void writeInfo(File file) throws IOException {
+      try(PrintWriter writer = new PrintWriter(file, "UTF-8")){
+         for(Map.Entry<String, String> entry : info.entrySet()){
+            writer.println(entry.getKey() + ":" + entry.getValue());
+         }
+         //Encrypted backups sign their information so it cannot be changed to skip the checks on restore
+         if(crypto != null){
+            writer.println("mac:" + crypto.signInfo(info));
+         }
+         if(writer.checkError()){
+            throw new IOException("Failed to write " + file);
+         }
+      }
+   }
+
+   /**
+    * Get how region files are written, so a backup is never resumed with different settings
+    * @return "copy", "compact" or "compactInhabited"
+    */
+   private String layout(){
+      if(compact == false){
+         return "copy";
+      }
+      return skipUninhabited ? "compactInhabited" : "compact";
+   }
+
+   /**
+    * Check if a journal's staged files were written with the same settings as this backup
+    * @param mode the mode from the journal, or null if there is nothing to resume
+    * @return true if the staged files can be resumed
+    */
+   private boolean isSameMode(String mode){
+      if(mode == null || mode.startsWith(layout() + "\t") == false){
+         return false;
+      }
+      String encryption = mode.substring(layout().length() + 1);
+      return encrypt ? encryption.startsWith("aes\t") : encryption.equals("plain");
+   }
+
+   /**
+    * Load the journal of an interrupted backup, or discard it if there is nothing left to resume
+    * @return how the staged files were written, the layout() and then "plain" or "aes" and the salt, or null if there is nothing to resume
+    */
+   private String loadJournal() throws IOException {
+      if(staging.exists() == false){
+         journal.delete();
+         return null;
+      }
+      if(journal.exists() == false){
+         return null;
+      }
+
+      String mode = "plain";
+      try(BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"))){
+         String line = br.readLine();
+         if(line != null && line.startsWith("MBMJOURNAL\t")){
+            mode = line.substring("MBMJOURNAL\t".length());
+            line = br.readLine();
+         }
+         while(line != null){
+            //0 = source size
+            //1 = source modified time
+            //2 = bytes written
+            //3 = path relative to the world
+            //A line torn by a crash will simply fail to match and the file is copied again
+            String[] result = line.split("\t", 4);
+            if(result.length == 4){
+               copied.put(result[3], result[0] + "\t" + result[1] + "\t" + result[2]);
+            }
+            line = br.readLine();
+         }
+      }
+      return mode;
+   }
+
+   /**
+    * Check if a game or server has the world open. Minecraft holds a lock on session.lock while
+    * a world is open, so if we cannot take the lock ourselves someone else has it.
+    * @param sessionLock the world's session.lock file
+    * @return true if the world is open
+    */
+   private boolean isWorldInUse(File sessionLock){
+      if(sessionLock.exists() == false){
+         return false;
+      }
+
+      try(FileChannel channel = FileChannel.open(sessionLock.toPath(), StandardOpenOption.WRITE)){
+         FileLock lock = channel.tryLock();
+         if(lock == null){
+            return true;
+         }
+         lock.release();
+         return false;
+      } catch(OverlappingFileLockException | IOException e){
+         return true;
+      }
+   }
+
+   /**
+    * Delete a directory and everything in it
+    * @param dir the directory to delete
+    */
+   private void deleteDirectory(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if(files != null){
+         for(File f : files){
+            deleteDirectory(f);
+         }
+      }
+      Files.deleteIfExists(dir.toPath());
+   }
+
+   /**
+    * Copy a directory into the staging folder, skipping files the journal says are already there
+    * @param source the directory to be copied
+    * @param target the location to be copied to
+    * @param path the path of the directory relative to the world, ending in '/' unless empty
+    */
+   private void copyDirectory(File source, File target, String path) throws IOException {
+      Files.createDirectories(target.toPath());
+
+      String[] files = source.list();
+      if(files == null){
+         throw new IOException("Failed to read directory " + source);
+      }
+
+      for(String f : files){
+         File sourceFile = new File(source, f);
+         File targetFile = new File(target, f);
+
+         if(sourceFile.isDirectory()){
+            copyDirectory(sourceFile, targetFile, path + f + "/");
+            continue;
+         }
+
+         //session.lock only belongs to the running game, and it cannot be read on Windows while the world is open
+         if(consistent && (path + f).equals("session.lock")){
+            continue;
+         }
+
+         String entry = sourceFile.length() + "\t" + sourceFile.lastModified() + "\t" + targetFile.length();
+         if(targetFile.exists() && entry.equals(copied.get(path + f))){
+            if(verifying == false){
+               resumedFiles++;
+            }
+            continue;
+         }
+
+         copyTracked(sourceFile, targetFile, path + f);
+      }
+
+      //Remove anything that is no longer in the world, such as files left by an earlier attempt
+      HashSet<String> names = new HashSet<String>(Arrays.asList(files));
+      String[] staged = target.list();
+      if(staged != null){
+         for(String f : staged){
+            if(names.contains(f) == false){
+               deleteDirectory(new File(target, f));
+            }
+         }
+      }
+   }
+
+   /**
+    * Copy a file into the staging folder and journal it. In consistent mode a file that changes
+    * while it is being copied is copied again, up to maxRetries times.
+    * @param source the file to be copied
+    * @param target the location to be copied to
+    * @param path the path of the file relative to the world
+    */
+   private void copyTracked(File source, File target, String path) throws IOException {
+      copiedFiles++;
+      if(verifying){
+         recopiedFiles++;
+      }
+      for(int attempt = 0; ; attempt++){
+         //The file was removed from the world after the directory was listed
+         if(source.exists() == false){
+            Files.deleteIfExists(target.toPath());
+            Long saved = savedByFile.remove(path);
+            savedBytes -= saved != null ? saved : 0;
+            return;
+         }
+
+         long size = source.length();
+         long modified = source.lastModified();
+         long written;
+         try{
+            written = copyFile(source, target, path);
+         } catch(IOException e){
+            //A file rewritten while it is read can fail part way through
+            if(consistent == false || attempt >= maxRetries || isUnchanged(source, size, modified)){
+               throw e;
+            }
+            recopiedFiles++;
+            continue;
+         }
+
+         if(written != target.length()){
+            throw new IOException("Failed to verify " + target);
+         }
+         if(consistent && attempt < maxRetries && isUnchanged(source, size, modified) == false){
+            recopiedFiles++;
+            continue;
+         }
+
+         //A file still changing after its retries keeps its old size and time here,
+         //so the checking pass at the end will pick it up again
+         String entry = size + "\t" + modified + "\t" + written;
+         copied.put(path, entry);
+         Long saved = savedByFile.put(path, lastSaved);
+         savedBytes += lastSaved - (saved != null ? saved : 0);
+         journalWriter.write(entry + "\t" + path);
+         journalWriter.newLine();
+         journalWriter.flush();
+         return;
+      }
+   }
+
+   /**
+    * Check if a file still has the size and modified time it had before it was copied
+    * @param file the file to check
+    * @param size the size before the copy
+    * @param modified the modified time before the copy
+    * @return true if the file has not changed
+    */
+   private boolean isUnchanged(File file, long size, long modified){
+      return file.length() == size && file.lastModified() == modified;
+   }
+
+   /**
+    * Copy a file and make sure it has reached the disk before it is journaled
+    * @param source the file to be copied
+    * @param target the location to be copied to
+    * @param path the path of the file relative to the world, encrypted files are bound to it
+    * @return the number of bytes written
+    */
+   private long copyFile(File source, File target, String path) throws IOException {
+      lastSaved = 0;
+      if(compact && source.getName().endsWith(".mca")){
+         long size = source.length();
+         ByteBuffer region = MBMRegion.compact(source, skipUninhabited);
+         if(region != null){
+            lastSaved = size - region.remaining();
+            if(crypto != null){
+               return crypto.encrypt(region, target, path);
+            }
+            try(FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+               while(region.hasRemaining()){
+                  out.write(region);
+               }
+               out.force(false);
+               return out.size();
+            }
+         }
+      }
+
+      if(crypto != null){
+         return crypto.encryptFile(source, target, path);
+      }
+
+      try (
+       InputStream in = new FileInputStream(source);
+       FileOutputStream out = new FileOutputStream(target)){
+         byte[] buf = new byte[65536];
+         long written = 0;
+         int length;
+         while ((length = in.read(buf)) > 0){
+            out.write(buf, 0, length);
+            written += length;
+         }
+         out.getFD().sync();
+         return written;
+      }
+   }
+}
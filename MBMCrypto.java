@@ -0,0 +1,670 @@
+/*
+ * Encrypts and decrypts backup files with AES-GCM.
+ * Files are split into fixed-size blocks that are sealed independently, so blocks
+ * can be processed in parallel and any block can be found and checked on its own.
+ *
+ * File layout:
+ *    header   magic "MBME", version, salt, file id, block size, plain length
+ *    blocks   each block's ciphertext followed by its 16 byte tag
+ *
+ * Each block is also bound to the file's path in the backup, and the backup's info file
+ * holds a signed digest of every file, so renamed, swapped or deleted files are found too.
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+public class MBMCrypto{
+
+   //File the local master key is kept in
+   public static final String keyName = "key.MBM";
+
+   //Size of each independently encrypted block
+   public static final int blockSize = 1 << 20;
+
+   //Header fields
+   private static final byte[] magic = { 'M', 'B', 'M', 'E' };
+   private static final byte version = 2;
+   private static final int saltLength = 16;
+   private static final int headerLength = magic.length + 1 + saltLength + 8 + 4 + 8;
+   private static final int tagLength = 16;
+
+   //Threads shared by every encryption and decryption
+   private static final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+      public Thread newThread(Runnable r){
+         Thread t = new Thread(r, "MBM crypto");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   //One cipher per thread, a GCM cipher is re-initialised with a fresh IV for every block
+   private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>(){
+      protected Cipher initialValue(){
+         try{
+            return Cipher.getInstance("AES/GCM/NoPadding");
+         } catch(GeneralSecurityException e){
+            throw new IllegalStateException(e);
+         }
+      }
+   };
+
+   private static final SecureRandom random = new SecureRandom();
+
+   //The local master key
+   private byte[] masterKey;
+
+   //Salt of the backup being written, the backup key is derived from it
+   private byte[] salt;
+
+   //The key derived for the backup being written
+   private SecretKey backupKey;
+
+   /**
+    * Constructor, creates a crypto object that can only decrypt. The key file must already exist.
+    */
+   public MBMCrypto() throws IOException {
+      masterKey = loadKey(false);
+   }
+
+   /**
+    * Constructor, creates a crypto object for a backup, creating the key file if there is none
+    * @param salt the salt of the backup, use newSalt() for a new backup
+    */
+   public MBMCrypto(byte[] salt) throws IOException {
+      masterKey = loadKey(true);
+      this.salt = salt.clone();
+      backupKey = new SecretKeySpec(derive("MBM backup key", salt), "AES");
+   }
+
+   /**
+    * Create a random salt for a new backup
+    * @return the salt
+    */
+   public static byte[] newSalt(){
+      byte[] s = new byte[saltLength];
+      random.nextBytes(s);
+      return s;
+   }
+
+   /**
+    * Get the salt of the backup being written
+    * @return the salt
+    */
+   public byte[] getSalt(){
+      return salt.clone();
+   }
+
+   /**
+    * Get the size of a file once encrypted
+    * @param plainLength the size of the file
+    * @return the encrypted size
+    */
+   public static long encryptedLength(long plainLength){
+      return headerLength + plainLength + blockCount(plainLength) * (long) tagLength;
+   }
+
+   /**
+    * Encrypt a file
+    * @param source the file to be encrypted
+    * @param target the location to write the encrypted file to
+    * @param path the path of the file relative to the backup, using '/' between folders
+    * @return the number of bytes written
+    */
+   public long encryptFile(File source, File target, String path) throws IOException {
+      try(FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)){
+         final FileChannel fin = in;
+         return encrypt(new BlockSource(){
+            public void read(ByteBuffer block, long position) throws IOException {
+               readFully(fin, block, position);
+            }
+         }, in.size(), target, path);
+      }
+   }
+
+   /**
+    * Encrypt bytes that are already in memory, such as a compacted region file
+    * @param source the bytes to be encrypted, from its position to its limit
+    * @param target the location to write the encrypted file to
+    * @param path the path of the file relative to the backup, using '/' between folders
+    * @return the number of bytes written
+    */
+   public long encrypt(ByteBuffer source, File target, String path) throws IOException {
+      final ByteBuffer plain = source.slice();
+      return encrypt(new BlockSource(){
+         public void read(ByteBuffer block, long position) throws IOException {
+            ByteBuffer part = plain.duplicate();
+            part.position((int) position).limit((int) position + block.remaining());
+            block.put(part);
+         }
+      }, plain.remaining(), target, path);
+   }
+
+   /**
+    * Encrypt blocks from a source in parallel
+    * @param source where to read the plain blocks from
+    * @param length the number of plain bytes
+    * @param target the location to write the encrypted file to
+    * @param path the path of the file relative to the backup
+    * @return the number of bytes written
+    */
+   private long encrypt(final BlockSource source, final long length, File target, String path) throws IOException {
+      final byte[] pathBytes = path.getBytes("UTF-8");
+      try(FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+         final FileChannel fout = out;
+
+         byte[] fileId = new byte[8];
+         random.nextBytes(fileId);
+         final byte[] header = header(salt, fileId, length);
+         writeFully(out, ByteBuffer.wrap(header), 0);
+
+         final long blocks = blockCount(length);
+         ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+         for(long i = 0; i < blocks; i++){
+            final long index = i;
+            tasks.add(new Callable<Void>(){
+               public Void call() throws Exception {
+                  int plainLength = blockLength(length, index);
+                  ByteBuffer plain = ByteBuffer.allocate(plainLength);
+                  source.read(plain, index * blockSize);
+                  plain.flip();
+
+                  ByteBuffer sealed = ByteBuffer.allocate(plainLength + tagLength);
+                  Cipher cipher = init(Cipher.ENCRYPT_MODE, backupKey, header, pathBytes, index, index == blocks - 1);
+                  cipher.doFinal(plain, sealed);
+                  sealed.flip();
+                  writeFully(fout, sealed, headerLength + index * (blockSize + tagLength));
+                  return null;
+               }
+            });
+         }
+         runAll(tasks, target);
+
+         out.force(false);
+         return out.size();
+      }
+   }
+
+   /**
+    * Decrypt a file, checking every block for tampering
+    * @param source the encrypted file
+    * @param target the location to write the decrypted file to
+    * @param path the path of the file relative to the backup, using '/' between folders
+    */
+   public void decryptFile(File source, File target, String path) throws IOException {
+      final byte[] pathBytes = path.getBytes("UTF-8");
+      try (
+       FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+       FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+         final FileChannel fin = in;
+         final FileChannel fout = out;
+
+         ByteBuffer headerBuffer = ByteBuffer.allocate(headerLength);
+         readFully(in, headerBuffer, 0);
+         final byte[] header = headerBuffer.array();
+         headerBuffer.flip();
+
+         byte[] fileMagic = new byte[magic.length];
+         headerBuffer.get(fileMagic);
+         if(Arrays.equals(fileMagic, magic) == false || headerBuffer.get() != version){
+            throw new IOException("Not an encrypted backup file: " + source);
+         }
+         byte[] fileSalt = new byte[saltLength];
+         headerBuffer.get(fileSalt);
+         headerBuffer.position(headerBuffer.position() + 8);
+         int fileBlockSize = headerBuffer.getInt();
+         final long length = headerBuffer.getLong();
+
+         //A changed header or a missing block shows up here, a changed block fails its tag below
+         if(fileBlockSize != blockSize || length < 0 || in.size() != encryptedLength(length)){
+            throw new IOException("Backup file has been tampered with or truncated: " + source);
+         }
+
+         final SecretKey key = new SecretKeySpec(derive("MBM backup key", fileSalt), "AES");
+         final long blocks = blockCount(length);
+         ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+         for(long i = 0; i < blocks; i++){
+            final long index = i;
+            tasks.add(new Callable<Void>(){
+               public Void call() throws Exception {
+                  int plainLength = blockLength(length, index);
+                  ByteBuffer sealed = ByteBuffer.allocate(plainLength + tagLength);
+                  readFully(fin, sealed, headerLength + index * (blockSize + tagLength));
+                  sealed.flip();
+
+                  ByteBuffer plain = ByteBuffer.allocate(plainLength);
+                  Cipher cipher = init(Cipher.DECRYPT_MODE, key, header, pathBytes, index, index == blocks - 1);
+                  try{
+                     cipher.doFinal(sealed, plain);
+                  } catch(AEADBadTagException e){
+                     throw new IOException("Backup file has been tampered with: " + source + " block " + index);
+                  }
+                  plain.flip();
+                  writeFully(fout, plain, index * blockSize);
+                  return null;
+               }
+            });
+         }
+         runAll(tasks, source);
+      }
+   }
+
+   /**
+    * Decrypt an entire backup. Use verifyBackup() first to find missing, renamed or swapped files.
+    * The backup is decrypted into a folder next to the target and only moved into place once every
+    * block has passed its check, so a tampered backup never leaves a half restored world behind.
+    * @param sourceLocation the encrypted backup folder
+    * @param targetLocation the location to be decrypted to, which must not exist yet
+    */
+   public void decrypt(File sourceLocation, File targetLocation) throws IOException {
+      File target = targetLocation.getAbsoluteFile();
+      if(target.exists()){
+         throw new IOException(target + " already exists");
+      }
+      File partial = new File(target.getParentFile(), target.getName() + ".partial");
+      deleteDirectory(partial);
+      try{
+         decrypt(sourceLocation, partial, "");
+         Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch(IOException | RuntimeException e){
+         try{
+            deleteDirectory(partial);
+         } catch(IOException d){
+            e.addSuppressed(d);
+         }
+         throw e;
+      }
+   }
+
+   /**
+    * Delete a directory and everything in it
+    * @param dir the directory to delete
+    */
+   private static void deleteDirectory(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if(files != null){
+         for(File f : files){
+            deleteDirectory(f);
+         }
+      }
+      Files.deleteIfExists(dir.toPath());
+   }
+
+   /**
+    * Decrypt a directory or file
+    * @param sourceLocation the encrypted directory or file
+    * @param targetLocation the location to be decrypted to
+    * @param path the path relative to the backup, empty for the backup itself
+    */
+   private void decrypt(File sourceLocation, File targetLocation, String path) throws IOException {
+      if(sourceLocation.isDirectory()){
+         Files.createDirectories(targetLocation.toPath());
+         String[] files = sourceLocation.list();
+         if(files == null){
+            throw new IOException("Failed to read directory " + sourceLocation);
+         }
+         for(String f : files){
+            decrypt(new File(sourceLocation, f), new File(targetLocation, f), path.isEmpty() ? f : path + "/" + f);
+         }
+      } else {
+         decryptFile(sourceLocation, targetLocation, path);
+      }
+   }
+
+   /**
+    * Check if a file starts like an encrypted backup file
+    * @param file the file to check
+    * @return true if the file is encrypted
+    */
+   public static boolean isEncryptedFile(File file) throws IOException {
+      if(file.length() < headerLength){
+         return false;
+      }
+      try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+         ByteBuffer start = ByteBuffer.allocate(magic.length);
+         readFully(in, start, 0);
+         return Arrays.equals(start.array(), magic);
+      }
+   }
+
+   /**
+    * Check if any file in a backup is encrypted
+    * @param dir the backup folder
+    * @return true if an encrypted file was found
+    */
+   public static boolean containsEncryptedFiles(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if(files == null){
+         throw new IOException("Failed to read directory " + dir);
+      }
+      for(File f : files){
+         if(f.isDirectory() ? containsEncryptedFiles(f) : isEncryptedFile(f)){
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Get a digest of every file in the backup being written, its path and file id, keyed so it cannot be forged
+    * @param dir the backup folder
+    * @return the digest as hex
+    */
+   public String listDigest(File dir) throws IOException {
+      return listDigest(dir, salt);
+   }
+
+   /**
+    * Sign the information saved next to the backup being written
+    * @param info the information, without a "mac" entry
+    * @return the signature as hex
+    */
+   public String signInfo(Map<String, String> info) throws IOException {
+      return signInfo(info, salt);
+   }
+
+   /**
+    * Check a backup before it is restored. The info file must be signed, say the backup is
+    * encrypted, and list exactly the encrypted files that are in the backup folder.
+    * @param dir the backup folder
+    * @param info the information saved next to the backup
+    */
+   public void verifyBackup(File dir, Map<String, String> info) throws IOException {
+      if("true".equals(info.get("encrypted")) == false || info.get("salt") == null || info.get("mac") == null || info.get("fileList") == null){
+         throw new IOException("Backup contains encrypted files but its info file is missing or does not match, it may have been tampered with");
+      }
+
+      byte[] backupSalt;
+      try{
+         backupSalt = fromHex(info.get("salt"));
+      } catch(NumberFormatException e){
+         throw new IOException("Backup info file has been tampered with");
+      }
+      if(backupSalt.length != saltLength){
+         throw new IOException("Backup info file has been tampered with");
+      }
+
+      TreeMap<String, String> signed = new TreeMap<String, String>(info);
+      signed.remove("mac");
+      if(MessageDigest.isEqual(signInfo(signed, backupSalt).getBytes("UTF-8"), info.get("mac").getBytes("UTF-8")) == false){
+         throw new IOException("Backup info file has been tampered with");
+      }
+      if(MessageDigest.isEqual(listDigest(dir, backupSalt).getBytes("UTF-8"), info.get("fileList").getBytes("UTF-8")) == false){
+         throw new IOException("Files in the backup have been added, removed, renamed or swapped");
+      }
+   }
+
+   /**
+    * Get a keyed digest of every file in a backup. Each file adds the MAC of its path and file id,
+    * combined with XOR so the order the folder is listed in does not matter, and the count is
+    * added at the end. A file from another backup has a different salt and is refused.
+    * @param dir the backup folder
+    * @param backupSalt the salt of the backup
+    * @return the digest as hex
+    */
+   private String listDigest(File dir, byte[] backupSalt) throws IOException {
+      try{
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(derive("MBM backup file list", backupSalt), "HmacSHA256"));
+         byte[] combined = new byte[mac.getMacLength()];
+         long count = addToDigest(dir, "", backupSalt, mac, combined);
+
+         mac.update(ByteBuffer.allocate(8).putLong(count).array());
+         return toHex(mac.doFinal(combined));
+      } catch(GeneralSecurityException e){
+         throw new IOException(e);
+      }
+   }
+
+   /**
+    * Add the files in a folder to a file list digest
+    * @return the number of files added
+    */
+   private long addToDigest(File dir, String path, byte[] backupSalt, Mac mac, byte[] combined) throws IOException {
+      String[] files = dir.list();
+      if(files == null){
+         throw new IOException("Failed to read directory " + dir);
+      }
+
+      long count = 0;
+      for(String f : files){
+         File file = new File(dir, f);
+         String filePath = path.isEmpty() ? f : path + "/" + f;
+         if(file.isDirectory()){
+            count += addToDigest(file, filePath, backupSalt, mac, combined);
+            continue;
+         }
+
+         ByteBuffer header = ByteBuffer.allocate(headerLength);
+         if(file.length() >= headerLength){
+            try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+               readFully(in, header, 0);
+            }
+         }
+         byte[] fileMagic = Arrays.copyOfRange(header.array(), 0, magic.length);
+         byte[] fileSalt = Arrays.copyOfRange(header.array(), magic.length + 1, magic.length + 1 + saltLength);
+         if(Arrays.equals(fileMagic, magic) == false || Arrays.equals(fileSalt, backupSalt) == false){
+            throw new IOException("File does not belong to this encrypted backup: " + file);
+         }
+
+         mac.update(filePath.getBytes("UTF-8"));
+         mac.update((byte) 0);
+         byte[] entry = mac.doFinal(Arrays.copyOfRange(header.array(), magic.length + 1 + saltLength, magic.length + 1 + saltLength + 8));
+         for(int i = 0; i < combined.length; i++){
+            combined[i] ^= entry[i];
+         }
+         count++;
+      }
+      return count;
+   }
+
+   /**
+    * Sign backup information, one "key:value" line per entry in sorted order
+    * @param info the information
+    * @param backupSalt the salt of the backup
+    * @return the signature as hex
+    */
+   private String signInfo(Map<String, String> info, byte[] backupSalt) throws IOException {
+      try{
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(derive("MBM backup info", backupSalt), "HmacSHA256"));
+         for(Map.Entry<String, String> entry : new TreeMap<String, String>(info).entrySet()){
+            mac.update((entry.getKey() + ":" + entry.getValue() + "\n").getBytes("UTF-8"));
+         }
+         return toHex(mac.doFinal());
+      } catch(GeneralSecurityException e){
+         throw new IOException(e);
+      }
+   }
+
+   /**
+    * Turn bytes into a hex string
+    * @param bytes the bytes to convert
+    * @return the hex string
+    */
+   public static String toHex(byte[] bytes){
+      StringBuilder sb = new StringBuilder();
+      for(byte b : bytes){
+         sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Turn a hex string into bytes
+    * @param hex the hex string to convert
+    * @return the bytes
+    */
+   public static byte[] fromHex(String hex){
+      byte[] bytes = new byte[hex.length() / 2];
+      for(int i = 0; i < bytes.length; i++){
+         bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+      }
+      return bytes;
+   }
+
+   /**
+    * Load the local master key from the key.MBM file
+    * @param create true to create a new key if there is no key file
+    * @return the master key
+    */
+   private static byte[] loadKey(boolean create) throws IOException {
+      Path path = Paths.get(keyName);
+      if(Files.exists(path)){
+         byte[] key = Files.readAllBytes(path);
+         if(key.length != 32){
+            throw new IOException("Key file " + path.toAbsolutePath() + " is damaged");
+         }
+         return key;
+      }
+      if(create == false){
+         throw new IOException("Key file " + path.toAbsolutePath() + " was not found, it is needed to restore encrypted backups");
+      }
+
+      //Only the owner may read the key. It is written to a new file that gets its permissions
+      //before any key bytes, then moved into place so a crash never leaves an empty key behind.
+      Path partial = Paths.get(keyName + ".partial");
+      Files.deleteIfExists(partial);
+      try{
+         Files.createFile(partial, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      } catch(UnsupportedOperationException e){
+         Files.createFile(partial);
+         File file = partial.toFile();
+         file.setReadable(false, false);
+         file.setReadable(true, true);
+         file.setWritable(false, false);
+         file.setWritable(true, true);
+      }
+
+      byte[] key = new byte[32];
+      random.nextBytes(key);
+      try(FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)){
+         writeFully(out, ByteBuffer.wrap(key), 0);
+         out.force(true);
+      }
+      Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+      return key;
+   }
+
+   /**
+    * Derive a key of a backup from the master key and the backup's salt
+    * @param label what the key is used for, each use gets a different key
+    * @param backupSalt the salt of the backup
+    * @return the key bytes
+    */
+   private byte[] derive(String label, byte[] backupSalt) throws IOException {
+      try{
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+         mac.update(label.getBytes("UTF-8"));
+         return mac.doFinal(backupSalt);
+      } catch(GeneralSecurityException e){
+         throw new IOException(e);
+      }
+   }
+
+   /**
+    * Build the header of an encrypted file
+    */
+   private static byte[] header(byte[] salt, byte[] fileId, long length){
+      ByteBuffer header = ByteBuffer.allocate(headerLength);
+      header.put(magic).put(version).put(salt).put(fileId).putInt(blockSize).putLong(length);
+      return header.array();
+   }
+
+   /**
+    * Set up the cipher of the current thread for one block. The IV is the file id followed by
+    * the block number, and the header, block number, last block flag and file path are authenticated,
+    * so blocks cannot be moved, dropped or swapped between files, and files cannot be renamed, without failing.
+    */
+   private static Cipher init(int mode, SecretKey key, byte[] header, byte[] path, long index, boolean last) throws GeneralSecurityException {
+      ByteBuffer iv = ByteBuffer.allocate(12);
+      iv.put(header, magic.length + 1 + saltLength, 8).putInt((int) index);
+
+      Cipher cipher = ciphers.get();
+      cipher.init(mode, key, new GCMParameterSpec(tagLength * 8, iv.array()));
+      cipher.updateAAD(header);
+      cipher.updateAAD(ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array());
+      cipher.updateAAD(path);
+      return cipher;
+   }
+
+   /**
+    * Get the number of blocks in a file, an empty file still has one empty block
+    */
+   private static long blockCount(long length){
+      return Math.max(1, (length + blockSize - 1) / blockSize);
+   }
+
+   /**
+    * Get the number of plain bytes in a block
+    */
+   private static int blockLength(long length, long index){
+      return (int) Math.min(blockSize, length - index * blockSize);
+   }
+
+   /**
+    * Run block tasks on the shared threads and wait for all of them
+    */
+   private static void runAll(ArrayList<Callable<Void>> tasks, File file) throws IOException {
+      try{
+         for(Future<Void> f : pool.invokeAll(tasks)){
+            f.get();
+         }
+      } catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while processing " + file);
+      } catch(ExecutionException e){
+         if(e.getCause() instanceof IOException){
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   /**
+    * Somewhere plain blocks are read from
+    */
+   private interface BlockSource{
+      /**
+       * Fill a buffer with the plain bytes starting at a position
+       * @param block the buffer to fill
+       * @param position where in the plain bytes to start
+       */
+      void read(ByteBuffer block, long position) throws IOException;
+   }
+
+   /**
+    * Read until the buffer is full
+    */
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()){
+         int read = channel.read(buffer, position);
+         if(read < 0){
+            throw new EOFException("File ended early or changed while it was read");
+         }
+         position += read;
+      }
+   }
+
+   /**
+    * Write the whole buffer
+    */
+   private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()){
+         position += channel.write(buffer, position);
+      }
+   }
+}
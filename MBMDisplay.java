@@ -31,9 +31,9 @@ public class MBMDisplay extends JFrame{
    
    //Menu elements
    private JMenu[] menus = { new JMenu("File"), new JMenu("Edit"), new JMenu("View")};
-   private JMenuItem[] fileItems = { new JMenuItem("Add World"), new JMenuItem("Remove World From List"), new JMenuItem("Move Backup to MC Saves") };
-   private JMenuItem[] editItems = { new JMenuItem("Change Backup Location")};
-   private JMenuItem[] viewItems = { new JMenuItem("Open Backup Folder"), new JMenuItem("How to Use")};
+   private JMenuItem[] fileItems = { new JMenuItem("Add World"), new JMenuItem("Remove World From List"), new JMenuItem("Move Backup to MC Saves"), new JMenuItem("Find Worlds") };
+   private JMenuItem[] editItems = { new JMenuItem("Change Backup Location"), new JMenuItem("Add World Search Folder"), new JCheckBoxMenuItem("Encrypt Backups"), new JCheckBoxMenuItem("Consistent Backups"), new JCheckBoxMenuItem("Compact Region Files"), new JCheckBoxMenuItem("Skip Uninhabited Chunks")};
+   private JMenuItem[] viewItems = { new JMenuItem("Open Backup Folder"), new JMenuItem("How to Use"), new JMenuItem("Plan Backup")};
    
    //Profile object that contains worlds
    private MBMProfile profile = new MBMProfile();
@@ -192,6 +192,11 @@ public class MBMDisplay extends JFrame{
          menus[0].add(fileItems[i]);
       }
       //Setup "Edit" Menu Items
+      editItems[2].setSelected(profile.isEncrypted());
+      editItems[3].setSelected(profile.isConsistent());
+      editItems[4].setSelected(profile.isCompacted());
+      editItems[5].setSelected(profile.isSkipUninhabited());
+      editItems[5].setEnabled(profile.isCompacted());
       for (int i = 0; i < editItems.length; i++) {
          editItems[i].addActionListener(listener);
          menus[1].add(editItems[i]);
@@ -308,6 +313,74 @@ public class MBMDisplay extends JFrame{
       }
    }
 
+   /**
+    * "File:Find Worlds" operation
+    * Search the saves and server folders for worlds and add all of the new ones
+    */
+   private void menu_fileFindWorlds(){
+      MBMWorldFinder finder = new MBMWorldFinder(profile.getSearchRoots());
+      ArrayList<File> found = finder.findWorlds();
+
+      //Leave out worlds that are already in the list
+      ArrayList<File> newWorlds = new ArrayList<File>();
+      for(File world : found){
+         boolean known = false;
+         for(int i = 0; i < profile.numWorlds(); i++){
+            if(profile.getWorld(i).getWorldFile().getAbsolutePath().equals(world.getAbsolutePath())){
+               known = true;
+            }
+         }
+         if(known == false){
+            newWorlds.add(world);
+         }
+      }
+
+      if(newWorlds.isEmpty()){
+         JOptionPane.showMessageDialog(null, "No new worlds were found. " + finder.getRescanned() + " changed search folders were searched again.\nTo search a server folder, go to Edit > Add World Search Folder", MBMDriver.appName, JOptionPane.PLAIN_MESSAGE);
+         return;
+      }
+
+      int answer = JOptionPane.showConfirmDialog(null, "Found " + newWorlds.size() + " new worlds (" + finder.getRescanned() + " changed search folders were searched again). Add them all?", MBMDriver.appName, JOptionPane.YES_NO_OPTION);
+      if(answer != JOptionPane.YES_OPTION){
+         return;
+      }
+
+      profile.addWorlds(newWorlds);
+      killUI();
+      loadWorlds();
+      reloadProfiles();
+   }
+
+   /**
+    * "Edit:Add World Search Folder" operation
+    * Add a folder, such as a server directory, to be searched by File > Find Worlds
+    */
+   private void menu_editAddSearchFolder(){
+      String bTitle = explorer.getDialogTitle();
+      explorer.setDialogTitle("Select Folder to Search for Worlds");
+      int returnVal = explorer.showOpenDialog(MBMDisplay.this);
+      explorer.setDialogTitle(bTitle);
+
+      if(returnVal == JFileChooser.APPROVE_OPTION){
+         profile.addSearchRoot(explorer.getSelectedFile());
+      }
+   }
+
+   /**
+    * "Edit:Encrypt Backups" operation
+    * Turn encryption of new backups on or off
+    */
+   private void menu_editEncrypt(){
+      profile.setEncrypted(editItems[2].isSelected());
+
+      if(profile.isEncrypted()){
+         String msg = "<html>New backups will be encrypted with the key kept in:<br><br>" + new File(MBMCrypto.keyName).getAbsolutePath();
+         msg += "<br><br>Keep a copy of this file somewhere safe. Encrypted backups cannot be restored without it.</html>";
+         JLabel msgLabel = new JLabel(msg, JLabel.CENTER);
+         JOptionPane.showMessageDialog(null, msgLabel, MBMDriver.appName, JOptionPane.PLAIN_MESSAGE);
+      }
+   }
+
    /**
     * "File:Remove World" operation
     * Remove a world from the list, does not remove backup files
@@ -414,9 +487,21 @@ public class MBMDisplay extends JFrame{
       if(returnVal == JFileChooser.APPROVE_OPTION){
          if(explorer.getSelectedFile().getName().equals("saves")){
             try{
-               copy(new File(backupLoc+"/"+answer), new File(explorer.getSelectedFile() + "/"+answer));
+               //Encrypted backups are decrypted on the way back. The files themselves decide, not the
+               //info file, and the signed info file must agree with them before anything is restored
+               HashMap<String, String> info = MBMBackup.readInfo(backupLoc, answer);
+               File backupDir = new File(backupLoc+"/"+answer);
+               if("true".equals(info.get("encrypted")) || MBMCrypto.containsEncryptedFiles(backupDir)){
+                  MBMCrypto crypto = new MBMCrypto();
+                  crypto.verifyBackup(backupDir, info);
+                  crypto.decrypt(backupDir, new File(explorer.getSelectedFile() + "/"+answer));
+               }
+               else{
+                  copy(new File(backupLoc+"/"+answer), new File(explorer.getSelectedFile() + "/"+answer));
+               }
             } catch( IOException e){
                System.out.println(e);
+               JOptionPane.showMessageDialog(null, "OPERATION FAILED:\n" + e.getMessage(), MBMDriver.appName, JOptionPane.ERROR_MESSAGE);
             }
          }
          else{
@@ -432,7 +517,7 @@ public class MBMDisplay extends JFrame{
     private void menu_viewHowTo(){
       String msg = "<html>Welcome to Minecraft Backup Manager<br><br>This tool will help you backup your single player worlds in an easy and organized way.";
       msg += "<br><br>The first thing you need to do is add your worlds. To do this, go to file > Add World. Navigate to your Minecraft<br>";
-      msg += "saves folder and select the Minecraft world.<br><br>Whenever you wish to backup your Minecraft world, just press the 'backup' button.";
+      msg += "saves folder and select the Minecraft world. File > Find Worlds will add every world it finds at once.<br><br>Whenever you wish to backup your Minecraft world, just press the 'backup' button.";
       msg += "<br><br>To check on your backups, go to view > Open Backups Folder. Find the folder titled with your world name. Inside<br>";
       msg += "there will be your backups. They will be titled 'YEAR'-'MONTH'-'DAY'--'TIME'--'WORLD NAME'";
       msg += "<br><br>To restore a save, go to file > Move Backup to MC Saves, this will not overwrite your other saves.<br>To remove an unwanted save, do so inside the Minecraft client.</html>";
@@ -441,6 +526,68 @@ public class MBMDisplay extends JFrame{
       JOptionPane.PLAIN_MESSAGE);
     }
 
+    /**
+    * "View: Plan Backup" operation
+    * Show how big a backup of a world will be, how long it should take and whether it will fit, without copying anything
+    */
+    private void menu_viewPlanBackup(){
+      String[] options = new String[profile.numWorlds()+1];
+      options[0] = "- NONE -";
+      for(int i = 0; i < profile.numWorlds(); i++){
+         options[i+1] = profile.getWorld(i).getName();
+      }
+
+      String answer = (String) JOptionPane.showInputDialog(null,"Which world would you like to plan a backup for?",MBMDriver.appName, JOptionPane.PLAIN_MESSAGE, null,options, options[0]);
+      if(answer == null || answer.equals("- NONE -")){
+         return;
+      }
+
+      MBMPlanner planner = new MBMPlanner(profile.getWorld(answer).getWorldFile(), new File(profile.getOutput()+"/MBM_BACKUPS/"+answer+"_BACKUPS"));
+      MBMPlanner.Plan plan;
+      try{
+         plan = planner.plan(profile.isEncrypted());
+      } catch(IOException e){
+         System.out.println(e);
+         JOptionPane.showMessageDialog(null, "OPERATION FAILED:\n" + e.getMessage(), MBMDriver.appName, JOptionPane.ERROR_MESSAGE);
+         return;
+      }
+
+      String msg = "<html>Backup plan for " + answer + "<br><br>";
+      msg += "World size: " + formatBytes(plan.getBytes()) + " in " + plan.getFiles() + " files<br>";
+      msg += "Backup size: about " + formatBytes(plan.getEstimatedBytes()) + "<br>";
+      msg += "Time: " + (plan.getEstimatedMillis() < 0 ? "unknown until the first backup" : "about " + Math.max(1, plan.getEstimatedMillis() / 1000) + " seconds") + "<br>";
+      msg += "Free space: " + formatBytes(plan.getFreeBytes()) + (plan.getStagedBytes() > 0 ? " and " + formatBytes(plan.getStagedBytes()) + " held by an unfinished backup" : "") + (plan.fits() ? "" : ", " + formatBytes(plan.getShortfall()) + " short") + "<br><br>";
+      for(Map.Entry<String, long[]> area : planner.getAreas().entrySet()){
+         msg += area.getKey() + ": " + formatBytes(area.getValue()[1]) + " in " + area.getValue()[0] + " files<br>";
+      }
+      msg += "<br>";
+      for(Map.Entry<String, long[]> type : planner.getTypes().entrySet()){
+         msg += type.getKey() + ": " + formatBytes(type.getValue()[1]) + " in " + type.getValue()[0] + " files<br>";
+      }
+      msg += "</html>";
+      JLabel msgLabel = new JLabel(msg, JLabel.LEFT);
+      JOptionPane.showMessageDialog(null, msgLabel, MBMDriver.appName, JOptionPane.PLAIN_MESSAGE);
+    }
+
+    /**
+    * Format a number of bytes for display
+    * @param bytes the number of bytes
+    * @return the size in B, KB, MB or GB
+    */
+    private static String formatBytes(long bytes){
+      if(bytes < 1024){
+         return bytes + " B";
+      }
+      String[] units = { "KB", "MB", "GB", "TB" };
+      double size = bytes;
+      int unit = -1;
+      while(size >= 1024 && unit < units.length - 1){
+         size /= 1024;
+         unit++;
+      }
+      return String.format("%.1f %s", size, units[unit]);
+    }
+
     /**
     * Backup Button
     * Backup the world from the associated button
@@ -458,24 +605,38 @@ public class MBMDisplay extends JFrame{
             String backupFolderName = copyDate.get(Calendar.YEAR)+"-"+copyDate.get(Calendar.MONTH)+"-"+copyDate.get(Calendar.DAY_OF_MONTH)+"--"+copyDate.get(Calendar.HOUR_OF_DAY)+"-"+copyDate.get(Calendar.MINUTE)+"-" +copyDate.get(Calendar.SECOND)+"--"+ tempWorldName;
 
             try{
-               try{
-                  if((new File(profile.getOutput()+"/MBM_BACKUPS/"+tempWorldName+"_BACKUPS")).exists() == false){
-                     Files.createDirectory(Paths.get(profile.getOutput()+"/MBM_BACKUPS/"+tempWorldName+"_BACKUPS"));
-
-                     try{
-                        if((new File(profile.getOutput()+"/MBM_BACKUPS/"+tempWorldName+"_BACKUPS/"+backupFolderName)).exists() == false){
-                           Files.createDirectory(Paths.get(profile.getOutput()+"/MBM_BACKUPS/"+tempWorldName+"_BACKUPS/"+backupFolderName));
-                        }
-                     } catch(IOException ex){
-                        System.out.println(ex);
-                     }
-                  }
-               } catch(IOException ex){
-                  System.out.println(ex);
+               File backupsDir = new File(profile.getOutput()+"/MBM_BACKUPS/"+tempWorldName+"_BACKUPS");
+
+               //Refuse to start a backup that is not going to fit
+               MBMPlanner planner = new MBMPlanner(profile.getWorld(buttonNum).getWorldFile(), backupsDir);
+               MBMPlanner.Plan plan = planner.plan(profile.isEncrypted());
+               if(plan.fits() == false){
+                  JOptionPane.showMessageDialog(null, "OPERATION FAILED:\nNot enough free space for this backup.\n" + formatBytes(plan.getShortfall()) + " more is needed.", MBMDriver.appName, JOptionPane.ERROR_MESSAGE);
+                  return;
                }
-                        
-               copy(profile.getWorld(buttonNum).getWorldFile(), new File(profile.getOutput()+"/MBM_BACKUPS/" + tempWorldName+"_BACKUPS/" + backupFolderName));
-                        
+
+               //Write the backup into a staging folder first, an interrupted backup is resumed from its journal
+               MBMBackup backup = new MBMBackup(profile.getWorld(buttonNum).getWorldFile(), backupsDir);
+               backup.setEncrypted(profile.isEncrypted());
+               backup.setConsistent(profile.isConsistent());
+               backup.setCompacted(profile.isCompacted(), profile.isSkipUninhabited());
+               long start = System.currentTimeMillis();
+               backup.run(backupFolderName);
+
+               //A resumed backup copied less than the whole world, so its speed would be misleading
+               if(backup.getResumedFiles() == 0){
+                  planner.recordBackup(plan.getBytes(), System.currentTimeMillis() - start);
+               }
+               if(profile.isCompacted()){
+                  JOptionPane.showMessageDialog(null, "Backup finished. Compacting the region files of " + tempWorldName + " saved " + formatBytes(backup.getSavedBytes()) + ".", MBMDriver.appName, JOptionPane.INFORMATION_MESSAGE);
+               }
+               if(profile.isConsistent() && backup.isConsistent() == false){
+                  JOptionPane.showMessageDialog(null, "Backup finished, but some files kept changing while they were copied.\nThe backup has been marked as inconsistent.", MBMDriver.appName, JOptionPane.WARNING_MESSAGE);
+               }
+               if(backup.getResumedFiles() > 0){
+                  System.out.println("Resumed backup of " + tempWorldName + ", skipped " + backup.getResumedFiles() + " files already copied");
+               }
+
                profile.getWorld(buttonNum).backupNow();
                killUI();
                loadWorlds();
@@ -483,6 +644,7 @@ public class MBMDisplay extends JFrame{
             } catch(IOException error){
                System.out.println("IO EXCEPTION");
                System.out.println(error);
+               JOptionPane.showMessageDialog(null, "OPERATION FAILED:\n" + error.getMessage() + "\nPress 'Backup' again to continue where it stopped.", MBMDriver.appName, JOptionPane.ERROR_MESSAGE);
             }
          }
       }
@@ -502,10 +664,35 @@ public class MBMDisplay extends JFrame{
             menu_fileRestoreSave();
          }
 
+         if(e.getSource() == fileItems[3]){
+            menu_fileFindWorlds();
+         }
+
          if(e.getSource() == editItems[0]){
            promptForOutputDir(true);
          }
 
+         if(e.getSource() == editItems[1]){
+           menu_editAddSearchFolder();
+         }
+
+         if(e.getSource() == editItems[2]){
+           menu_editEncrypt();
+         }
+
+         if(e.getSource() == editItems[3]){
+           profile.setConsistent(editItems[3].isSelected());
+         }
+
+         if(e.getSource() == editItems[4]){
+           profile.setCompacted(editItems[4].isSelected());
+           editItems[5].setEnabled(profile.isCompacted());
+         }
+
+         if(e.getSource() == editItems[5]){
+           profile.setSkipUninhabited(editItems[5].isSelected());
+         }
+
          if(e.getSource() == viewItems[0]){
            menu_viewOpenBackups();
          }
@@ -514,6 +701,10 @@ public class MBMDisplay extends JFrame{
            menu_viewHowTo();
          }
 
+         if(e.getSource() == viewItems[2]){
+           menu_viewPlanBackup();
+         }
+
          if(e.getSource() == fileItems[0]){
             menu_fileAddWorld();
          }
@@ -0,0 +1,496 @@
+/*
+ * A sorted list of the files in a world, kept in a memory-mapped binary file so that
+ * worlds with millions of files can be looked up and compared without loading them.
+ *
+ * File layout:
+ *    header    magic "MBMF", version, file count, folder count, folder table offset, string pool offset
+ *    records   one fixed-width record per file, sorted by path: folder, name, size, modified time
+ *    folders   pool offset of each folder path, each folder is stored once
+ *    pool      strings as a 2 byte length and UTF-8 bytes
+ *
+ * Paths are sorted a folder at a time, which is the order a sorted walk of the world visits them.
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class MBMManifest{
+
+   //Header fields
+   private static final byte[] magic = { 'M', 'B', 'M', 'F' };
+   private static final int version = 1;
+   private static final int headerLength = 32;
+
+   //Size of each file record
+   private static final int recordLength = 24;
+
+   //Longest path that can be stored, a folder and a name of up to 65535 bytes each
+   private static final int maxPath = 65535 * 2 + 1;
+
+   //The mapped manifest file
+   private MappedByteBuffer map;
+
+   //Number of files and folders
+   private int count;
+   private int dirCount;
+
+   //Where the folder table and string pool start
+   private int dirsOffset;
+   private int poolOffset;
+
+   //Reused when building paths to compare, so a manifest should only be used by one thread
+   private byte[] pathBuffer = new byte[maxPath];
+
+   /**
+    * Something that gives the size and modified time of each file written to a manifest
+    */
+   public interface Source{
+      /**
+       * Get the size and modified time of a file
+       * @param path the path of the file relative to the folder, using '/' between folders
+       * @param file the file
+       * @return { size, modified time }, or null to leave the file out
+       */
+      long[] stat(String path, File file);
+   }
+
+   /**
+    * Something that is told about each difference found by diff()
+    */
+   public interface DiffListener{
+      /**
+       * A file that is only in the newer manifest
+       * @param path the path of the file
+       * @param size the size of the file
+       */
+      void added(String path, long size);
+
+      /**
+       * A file that is only in the older manifest
+       * @param path the path of the file
+       * @param size the size of the file
+       */
+      void removed(String path, long size);
+
+      /**
+       * A file whose size or modified time is different
+       * @param path the path of the file
+       * @param oldSize the size in the older manifest
+       * @param newSize the size in the newer manifest
+       */
+      void changed(String path, long oldSize, long newSize);
+   }
+
+   /**
+    * Constructor, maps a manifest file
+    * @param file the manifest file
+    */
+   public MBMManifest(File file) throws IOException {
+      try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+         if(in.size() < headerLength || in.size() > Integer.MAX_VALUE){
+            throw new IOException("Not a manifest file: " + file);
+         }
+         map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      }
+
+      byte[] fileMagic = new byte[magic.length];
+      map.get(fileMagic);
+      if(Arrays.equals(fileMagic, magic) == false || map.getInt() != version){
+         throw new IOException("Not a manifest file: " + file);
+      }
+      count = map.getInt();
+      dirCount = map.getInt();
+      dirsOffset = (int) map.getLong();
+      poolOffset = (int) map.getLong();
+      if(count < 0 || dirCount < 0 || dirsOffset != headerLength + (long) count * recordLength || poolOffset != dirsOffset + (long) dirCount * 4 || poolOffset > map.capacity()){
+         throw new IOException("Manifest file is damaged: " + file);
+      }
+   }
+
+   /**
+    * Write a manifest of every file in a world. The world is walked in sorted order and records
+    * are streamed to disk, so only the folder currently being listed is held in memory.
+    * @param world the world to list
+    * @param manifest the manifest file to write
+    */
+   public static void write(final File world, File manifest) throws IOException {
+      write(manifest, new Filler(){
+         public void fill(Builder builder) throws IOException {
+            builder.walk(world, "");
+         }
+      });
+   }
+
+   /**
+    * Write a manifest of the files in a folder, such as a finished backup, taking each file's size
+    * and modified time from somewhere other than the file itself. The folder is walked in sorted
+    * order the same as a world, so memory use does not grow with the number of files.
+    * @param dir the folder to list
+    * @param manifest the manifest file to write
+    * @param source gives the size and modified time of each file
+    */
+   public static void write(final File dir, File manifest, final Source source) throws IOException {
+      write(manifest, new Filler(){
+         public void fill(Builder builder) throws IOException {
+            builder.source = source;
+            builder.walk(dir, "");
+         }
+      });
+   }
+
+   /**
+    * Write a manifest from the records a filler adds, then move it into place
+    * @param manifest the manifest file to write
+    * @param filler adds every record in sorted order
+    */
+   private static void write(File manifest, Filler filler) throws IOException {
+      File records = new File(manifest.getPath() + ".records");
+      File pool = new File(manifest.getPath() + ".pool");
+      File partial = new File(manifest.getPath() + ".partial");
+
+      Builder builder = new Builder();
+      try{
+         builder.records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(records), 65536));
+         builder.pool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pool), 65536));
+         filler.fill(builder);
+         builder.records.close();
+         builder.pool.close();
+
+         try(FileChannel out = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+            long dirsOffset = headerLength + records.length();
+            long poolOffset = dirsOffset + builder.dirCount * 4L;
+            if(poolOffset + pool.length() > Integer.MAX_VALUE){
+               throw new IOException("Too many files for a manifest: " + manifest);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(magic).putInt(version).putInt(builder.count).putInt(builder.dirCount).putLong(dirsOffset).putLong(poolOffset);
+            header.flip();
+            out.write(header);
+
+            append(out, records);
+            ByteBuffer dirs = ByteBuffer.allocate(builder.dirCount * 4);
+            dirs.asIntBuffer().put(builder.dirs, 0, builder.dirCount);
+            while(dirs.hasRemaining()){
+               out.write(dirs);
+            }
+            append(out, pool);
+            out.force(false);
+         }
+         Files.move(partial.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally{
+         if(builder.records != null){
+            builder.records.close();
+         }
+         if(builder.pool != null){
+            builder.pool.close();
+         }
+         records.delete();
+         pool.delete();
+         partial.delete();
+      }
+   }
+
+   /**
+    * Get the number of files in the manifest
+    * @return number of files
+    */
+   public int numFiles(){
+      return count;
+   }
+
+   /**
+    * Get the path of a file
+    * @param index the index of the file
+    * @return the path relative to the world, using '/' between folders
+    */
+   public String getPath(int index){
+      int length = pathBytes(index, pathBuffer);
+      for(int i = 0; i < length; i++){
+         if(pathBuffer[i] == 0){
+            pathBuffer[i] = '/';
+         }
+      }
+      return new String(pathBuffer, 0, length, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Get the size of a file
+    * @param index the index of the file
+    * @return the size in bytes
+    */
+   public long getSize(int index){
+      return map.getLong(headerLength + index * recordLength + 8);
+   }
+
+   /**
+    * Get the modified time of a file
+    * @param index the index of the file
+    * @return the modified time
+    */
+   public long getModified(int index){
+      return map.getLong(headerLength + index * recordLength + 16);
+   }
+
+   /**
+    * Find a file with a binary search
+    * @param path the path relative to the world, using '/' between folders
+    * @return the index of the file, or -1 if it is not in the manifest
+    */
+   public int find(String path){
+      byte[] key = separate(path.getBytes(StandardCharsets.UTF_8));
+
+      int low = 0;
+      int high = count - 1;
+      while(low <= high){
+         int mid = (low + high) >>> 1;
+         int c = compare(pathBuffer, pathBytes(mid, pathBuffer), key, key.length);
+         if(c < 0){
+            low = mid + 1;
+         }
+         else if(c > 0){
+            high = mid - 1;
+         }
+         else{
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Compare two manifests in a single pass over both
+    * @param older the older manifest
+    * @param newer the newer manifest
+    * @param listener told about each file added, removed or changed
+    */
+   public static void diff(MBMManifest older, MBMManifest newer, DiffListener listener){
+      int i = 0;
+      int j = 0;
+      while(i < older.count || j < newer.count){
+         int c;
+         if(i >= older.count){
+            c = 1;
+         }
+         else if(j >= newer.count){
+            c = -1;
+         }
+         else{
+            c = compare(older.pathBuffer, older.pathBytes(i, older.pathBuffer), newer.pathBuffer, newer.pathBytes(j, newer.pathBuffer));
+         }
+
+         if(c < 0){
+            listener.removed(older.getPath(i), older.getSize(i));
+            i++;
+         }
+         else if(c > 0){
+            listener.added(newer.getPath(j), newer.getSize(j));
+            j++;
+         }
+         else{
+            if(older.getSize(i) != newer.getSize(j) || older.getModified(i) != newer.getModified(j)){
+               listener.changed(newer.getPath(j), older.getSize(i), newer.getSize(j));
+            }
+            i++;
+            j++;
+         }
+      }
+   }
+
+   /**
+    * Copy the path of a file into a buffer with a 0 between folders, so that a folder's
+    * files sort before any name that only starts with the folder's name
+    * @param index the index of the file
+    * @param buffer the buffer to copy into
+    * @return the length of the path
+    */
+   private int pathBytes(int index, byte[] buffer){
+      int record = headerLength + index * recordLength;
+      int dir = poolOffset + map.getInt(dirsOffset + map.getInt(record) * 4);
+      int name = poolOffset + map.getInt(record + 4);
+
+      int length = readString(dir, buffer, 0);
+      if(length > 0){
+         buffer[length++] = 0;
+      }
+      return readString(name, buffer, length);
+   }
+
+   /**
+    * Copy a string from the pool into a buffer
+    * @return the position after the string
+    */
+   private int readString(int offset, byte[] buffer, int position){
+      int length = map.getShort(offset) & 0xFFFF;
+      ByteBuffer string = map.duplicate();
+      string.position(offset + 2);
+      string.get(buffer, position, length);
+      return position + length;
+   }
+
+   /**
+    * Replace each '/' in a path with a 0, the way paths are stored and compared
+    * @param path the UTF-8 bytes of the path, changed in place
+    * @return the same bytes
+    */
+   private static byte[] separate(byte[] path){
+      for(int i = 0; i < path.length; i++){
+         if(path[i] == '/'){
+            path[i] = 0;
+         }
+      }
+      return path;
+   }
+
+   /**
+    * Compare paths byte by byte as unsigned values
+    */
+   private static int compare(byte[] a, int aLength, byte[] b, int bLength){
+      int length = Math.min(aLength, bLength);
+      for(int i = 0; i < length; i++){
+         int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+         if(c != 0){
+            return c;
+         }
+      }
+      return aLength - bLength;
+   }
+
+   /**
+    * Copy a whole file onto the end of a channel
+    */
+   private static void append(FileChannel out, File file) throws IOException {
+      try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+         long position = 0;
+         long size = in.size();
+         while(position < size){
+            position += in.transferTo(position, size - position, out);
+         }
+      }
+   }
+
+   /**
+    * Adds the records of a manifest to a builder
+    */
+   private interface Filler{
+      void fill(Builder builder) throws IOException;
+   }
+
+   /**
+    * Walks a world and streams its records and strings out
+    */
+   private static class Builder{
+
+      //Where records and strings are written
+      private DataOutputStream records;
+      private DataOutputStream pool;
+
+      //Number of files written and the size of the string pool
+      private int count = 0;
+      private int poolSize = 0;
+
+      //Pool offset of each folder
+      private int[] dirs = new int[64];
+      private int dirCount = 0;
+
+      //Gives the size and modified time of each file, null to take them from the file itself
+      private Source source;
+
+      /**
+       * Write the records for a folder and everything below it, in sorted order
+       * @param dir the folder to walk
+       * @param path the folder's path relative to the world, empty for the world itself
+       */
+      private void walk(File dir, String path) throws IOException {
+         String[] names = dir.list();
+         if(names == null){
+            throw new IOException("Failed to read directory " + dir);
+         }
+
+         byte[][] encoded = new byte[names.length][];
+         Integer[] order = new Integer[names.length];
+         for(int i = 0; i < names.length; i++){
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+         }
+         final byte[][] sortKeys = encoded;
+         Arrays.sort(order, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+               return MBMManifest.compare(sortKeys[a], sortKeys[a].length, sortKeys[b], sortKeys[b].length);
+            }
+         });
+
+         //The folder is only added once it has a file in it
+         int dirIndex = -1;
+         for(int i : order){
+            File file = new File(dir, names[i]);
+            if(file.isDirectory()){
+               walk(file, path.isEmpty() ? names[i] : path + "/" + names[i]);
+               continue;
+            }
+
+            long[] stat = { file.length(), file.lastModified() };
+            if(source != null){
+               stat = source.stat(path.isEmpty() ? names[i] : path + "/" + names[i], file);
+               if(stat == null){
+                  continue;
+               }
+            }
+
+            if(dirIndex < 0){
+               //Folders are stored with a 0 between them, the same as paths are compared
+               dirIndex = addDir(separate(path.getBytes(StandardCharsets.UTF_8)));
+            }
+            addRecord(dirIndex, encoded[i], stat[0], stat[1]);
+         }
+      }
+
+      /**
+       * Add a folder to the folder table
+       * @param dir the UTF-8 bytes of the folder with a 0 between folders
+       * @return the index of the folder
+       */
+      private int addDir(byte[] dir) throws IOException {
+         if(dirCount == dirs.length){
+            dirs = Arrays.copyOf(dirs, dirs.length * 2);
+         }
+         dirs[dirCount] = addString(dir);
+         return dirCount++;
+      }
+
+      /**
+       * Write one file record
+       */
+      private void addRecord(int dirIndex, byte[] name, long size, long modified) throws IOException {
+         records.writeInt(dirIndex);
+         records.writeInt(addString(name));
+         records.writeLong(size);
+         records.writeLong(modified);
+         count++;
+      }
+
+      /**
+       * Add a string to the pool
+       * @param bytes the UTF-8 bytes of the string
+       * @return the pool offset of the string
+       */
+      private int addString(byte[] bytes) throws IOException {
+         if(bytes.length > 65535){
+            throw new IOException("Path is too long for a manifest");
+         }
+         int offset = poolSize;
+         pool.writeShort(bytes.length);
+         pool.write(bytes);
+         poolSize += 2 + bytes.length;
+         return offset;
+      }
+   }
+}
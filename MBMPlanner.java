@@ -0,0 +1,440 @@
+/*
+ * Plans a backup before it is started. Keeps size statistics for a world that are updated
+ * from the changes since the last plan, and the speed of past backups, to predict how big
+ * a backup will be, how long it will take and whether it will fit.
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+public class MBMPlanner{
+
+   //Name of the statistics kept in a world's backup folder, next to the world-<time>.manifest file list they were counted from
+   public static final String statsName = "stats.MBM";
+
+   //How many past backups are used to work out the backup speed
+   private static final int historyLength = 10;
+
+   //The Minecraft world file
+   private File worldFile;
+
+   //The folder that holds every backup of the world
+   private File backupsDir;
+
+   //Total bytes and number of files in the world
+   private long totalBytes = 0;
+   private long totalFiles = 0;
+
+   //Number of files and bytes for each file type, type -> { files, bytes }
+   private TreeMap<String, long[]> types = new TreeMap<String, long[]>();
+
+   //Number of files and bytes for each dimension and folder, such as "nether/region" -> { files, bytes }
+   private TreeMap<String, long[]> areas = new TreeMap<String, long[]>();
+
+   //Bytes and milliseconds of past backups, oldest first
+   private ArrayList<long[]> history = new ArrayList<long[]>();
+
+   //Name of the file list the statistics were counted from
+   private String counted = "";
+
+   /**
+    * A prediction for one backup
+    */
+   public static class Plan{
+
+      //Size of the world
+      private long bytes;
+      private long files;
+
+      //Predicted size of the backup, upper bound since compaction is not counted
+      private long estimatedBytes;
+
+      //Predicted time in milliseconds, -1 if no backup has been timed yet
+      private long estimatedMillis;
+
+      //Free space where the backup will be written
+      private long freeBytes;
+
+      //Space held by an interrupted backup, which is reused or freed when the backup runs
+      private long stagedBytes;
+
+      /**
+       * Get the size of the world
+       * @return bytes
+       */
+      public long getBytes(){
+         return bytes;
+      }
+
+      /**
+       * Get the number of files in the world
+       * @return number of files
+       */
+      public long getFiles(){
+         return files;
+      }
+
+      /**
+       * Get the predicted size of the backup
+       * @return bytes
+       */
+      public long getEstimatedBytes(){
+         return estimatedBytes;
+      }
+
+      /**
+       * Get the predicted time the backup will take
+       * @return milliseconds, or -1 if no backup has been timed yet
+       */
+      public long getEstimatedMillis(){
+         return estimatedMillis;
+      }
+
+      /**
+       * Get the free space where the backup will be written
+       * @return bytes
+       */
+      public long getFreeBytes(){
+         return freeBytes;
+      }
+
+      /**
+       * Get the space held by an interrupted backup that will be resumed or started over
+       * @return bytes
+       */
+      public long getStagedBytes(){
+         return stagedBytes;
+      }
+
+      /**
+       * Get how much more space is needed for the backup
+       * @return bytes, 0 if the backup fits
+       */
+      public long getShortfall(){
+         return Math.max(0, estimatedBytes - freeBytes - stagedBytes);
+      }
+
+      /**
+       * Find out if the backup is expected to fit
+       * @return true if there is enough free space
+       */
+      public boolean fits(){
+         return getShortfall() == 0;
+      }
+   }
+
+   /**
+    * Constructor, creates a planner for a world and loads its saved statistics
+    * @param worldFile the Minecraft world file
+    * @param backupsDir the folder that holds every backup of the world
+    */
+   public MBMPlanner(File worldFile, File backupsDir){
+      this.worldFile = worldFile;
+      this.backupsDir = backupsDir;
+      loadStats();
+   }
+
+   /**
+    * Bring the statistics up to date and predict the next backup, without copying anything
+    * @param encrypt true if the backup will be encrypted
+    * @return the prediction
+    */
+   public Plan plan(boolean encrypt) throws IOException {
+      update();
+
+      Plan plan = new Plan();
+      plan.bytes = totalBytes;
+      plan.files = totalFiles;
+      plan.estimatedBytes = totalBytes;
+      if(encrypt){
+         plan.estimatedBytes = totalFiles * MBMCrypto.encryptedLength(0) + totalBytes + totalBytes / MBMCrypto.blockSize * 16;
+      }
+
+      long historyBytes = 0;
+      long historyMillis = 0;
+      for(long[] h : history){
+         historyBytes += h[0];
+         historyMillis += h[1];
+      }
+      plan.estimatedMillis = historyBytes > 0 ? (long) (totalBytes * ((double) historyMillis / historyBytes)) : -1;
+
+      //The backup folder may not exist yet, so look for the closest folder that does
+      File existing = backupsDir.getAbsoluteFile();
+      while(existing != null && existing.exists() == false){
+         existing = existing.getParentFile();
+      }
+      plan.freeBytes = existing != null ? existing.getUsableSpace() : 0;
+
+      //A backup that ran out of space part way through has already used some of it
+      plan.stagedBytes = sizeOf(new File(backupsDir, MBMBackup.stagingName));
+      return plan;
+   }
+
+   /**
+    * Add up the size of a folder and everything in it
+    * @param file the folder or file
+    * @return bytes, 0 if it does not exist
+    */
+   private static long sizeOf(File file){
+      File[] files = file.listFiles();
+      if(files == null){
+         return file.length();
+      }
+      long size = 0;
+      for(File f : files){
+         size += sizeOf(f);
+      }
+      return size;
+   }
+
+   /**
+    * Remember how long a backup took so later predictions use the measured speed
+    * @param bytes the size of the world that was backed up
+    * @param millis how long the backup took
+    */
+   public void recordBackup(long bytes, long millis){
+      if(bytes <= 0 || millis <= 0){
+         return;
+      }
+      history.add(new long[]{ bytes, millis });
+      while(history.size() > historyLength){
+         history.remove(0);
+      }
+      saveStats();
+   }
+
+   /**
+    * Get the number of files and bytes for each file type
+    * @return type -> { files, bytes }
+    */
+   public TreeMap<String, long[]> getTypes(){
+      return types;
+   }
+
+   /**
+    * Get the number of files and bytes for each dimension and folder
+    * @return area -> { files, bytes }
+    */
+   public TreeMap<String, long[]> getAreas(){
+      return areas;
+   }
+
+   /**
+    * List the world again and apply only the differences from the last list to the statistics.
+    * Each list gets a new name rather than replacing the last one, because a mapped file
+    * cannot be replaced on Windows, and the statistics name the list they were counted from
+    * so a crash part way through never counts changes twice.
+    */
+   private void update() throws IOException {
+      Files.createDirectories(backupsDir.toPath());
+      File updated = new File(backupsDir, "world-" + System.currentTimeMillis() + ".manifest");
+      try{
+         MBMManifest.write(worldFile, updated);
+         countChanges(new MBMManifest(updated));
+      } catch(IOException | RuntimeException e){
+         updated.delete();
+         throw e;
+      }
+
+      counted = updated.getName();
+      saveStats();
+
+      //Remove older world lists, one that is still mapped is removed next time. Backup lists belong to their backups.
+      String[] files = backupsDir.list();
+      if(files != null){
+         for(String f : files){
+            if(f.startsWith("world-") && f.endsWith(".manifest") && f.equals(counted) == false){
+               new File(backupsDir, f).delete();
+            }
+         }
+      }
+   }
+
+   /**
+    * Apply the differences between the list the statistics were counted from and a newer list,
+    * or count every file again if there is no older list or it cannot be read
+    * @param newer the newer list
+    */
+   private void countChanges(MBMManifest newer){
+      MBMManifest.DiffListener listener = new MBMManifest.DiffListener(){
+         public void added(String path, long size){
+            count(path, 1, size);
+         }
+         public void removed(String path, long size){
+            count(path, -1, -size);
+         }
+         public void changed(String path, long oldSize, long newSize){
+            count(path, 0, newSize - oldSize);
+         }
+      };
+
+      File manifest = new File(backupsDir, counted);
+      if(counted.isEmpty() == false && manifest.isFile()){
+         try{
+            MBMManifest.diff(new MBMManifest(manifest), newer, listener);
+            return;
+         } catch(IOException | RuntimeException e){
+            //A damaged list may have been partly applied, so start over from the newer list
+            System.out.println(e);
+         }
+      }
+
+      totalBytes = 0;
+      totalFiles = 0;
+      types.clear();
+      areas.clear();
+      for(int i = 0; i < newer.numFiles(); i++){
+         listener.added(newer.getPath(i), newer.getSize(i));
+      }
+   }
+
+   /**
+    * Add a change to the totals and to the file's type and area
+    * @param path the path of the file
+    * @param files the change in the number of files
+    * @param bytes the change in bytes
+    */
+   private void count(String path, long files, long bytes){
+      totalFiles += files;
+      totalBytes += bytes;
+      add(types, type(path), files, bytes);
+      add(areas, area(path), files, bytes);
+   }
+
+   /**
+    * Add to one entry of a breakdown, removing it once it is empty
+    */
+   private static void add(TreeMap<String, long[]> map, String key, long files, long bytes){
+      long[] value = map.get(key);
+      if(value == null){
+         value = new long[2];
+         map.put(key, value);
+      }
+      value[0] += files;
+      value[1] += bytes;
+      if(value[0] <= 0){
+         map.remove(key);
+      }
+   }
+
+   /**
+    * Get the type of a file from its extension
+    * @param path the path of the file
+    * @return the extension, such as ".mca", or "none"
+    */
+   private static String type(String path){
+      String name = path.substring(path.lastIndexOf('/') + 1);
+      int dot = name.lastIndexOf('.');
+      return dot > 0 ? name.substring(dot) : "none";
+   }
+
+   /**
+    * Get the dimension and folder a file is in
+    * @param path the path of the file
+    * @return the area, such as "overworld/region", "nether/entities" or "overworld" for files at the top of the world
+    */
+   private static String area(String path){
+      String[] parts = path.split("/");
+      String dimension = "overworld";
+      int folder = 0;
+
+      if(parts[0].equals("DIM-1")){
+         dimension = "nether";
+         folder = 1;
+      }
+      else if(parts[0].equals("DIM1")){
+         dimension = "end";
+         folder = 1;
+      }
+      else if(parts[0].equals("dimensions") && parts.length > 3){
+         dimension = parts[1] + ":" + parts[2];
+         folder = 3;
+      }
+
+      return folder < parts.length - 1 ? dimension + "/" + parts[folder] : dimension;
+   }
+
+   /**
+    * Attempt to load the statistics from the stats.MBM file
+    */
+   private void loadStats(){
+      File file = new File(backupsDir, statsName);
+      if(file.exists() == false){
+         return;
+      }
+
+      try(BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))){
+         String line = br.readLine();
+         while(line != null){
+            String[] result = line.split(":", 4);
+            if(result[0].equals("bytes")){
+               totalBytes = Long.parseLong(result[1]);
+            }
+            else if(result[0].equals("counted")){
+               counted = result[1];
+            }
+            else if(result[0].equals("files")){
+               totalFiles = Long.parseLong(result[1]);
+            }
+            else if(result[0].equals("type") || result[0].equals("area")){
+               //1 = files
+               //2 = bytes
+               //3 = name
+               (result[0].equals("type") ? types : areas).put(result[3], new long[]{ Long.parseLong(result[1]), Long.parseLong(result[2]) });
+            }
+            else if(result[0].equals("throughput")){
+               history.add(new long[]{ Long.parseLong(result[1]), Long.parseLong(result[2]) });
+            }
+            line = br.readLine();
+         }
+      } catch(IOException | RuntimeException e){
+         //Start over, the next plan lists the whole world again
+         System.out.println(e);
+         file.delete();
+         totalBytes = 0;
+         totalFiles = 0;
+         types.clear();
+         areas.clear();
+         history.clear();
+         counted = "";
+      }
+   }
+
+   /**
+    * Write the statistics to the stats.MBM file. They are written to a new file that is then
+    * moved over the old one, so a failed write never leaves half of the statistics behind.
+    */
+   private void saveStats(){
+      File file = new File(backupsDir, statsName);
+      File partial = new File(backupsDir, statsName + ".partial");
+      try{
+         try(PrintWriter writer = new PrintWriter(partial, "UTF-8")){
+            writer.println("version:" + MBMDriver.version);
+            writer.println("bytes:" + totalBytes);
+            writer.println("files:" + totalFiles);
+            writer.println("counted:" + counted);
+            for(Map.Entry<String, long[]> type : types.entrySet()){
+               writer.println("type:" + type.getValue()[0] + ":" + type.getValue()[1] + ":" + type.getKey());
+            }
+            for(Map.Entry<String, long[]> area : areas.entrySet()){
+               writer.println("area:" + area.getValue()[0] + ":" + area.getValue()[1] + ":" + area.getKey());
+            }
+            for(long[] h : history){
+               writer.println("throughput:" + h[0] + ":" + h[1]);
+            }
+            if(writer.checkError()){
+               throw new IOException("Failed to write " + partial);
+            }
+         }
+         Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch(IOException e){
+         System.out.println(e);
+         partial.delete();
+      }
+   }
+}
@@ -17,6 +17,19 @@ public class MBMProfile{
    //The directory where backups are stored
    private File outputDir;
 
+   //Extra folders to search for worlds, such as server directories
+   private ArrayList<File> searchRoots = new ArrayList<File>();
+
+   //Whether backups are encrypted
+   private boolean encrypt = false;
+
+   //Whether backups check for files changed while they were copied
+   private boolean consistent = false;
+
+   //Whether region files are compacted in backups, and whether uninhabited chunks are left out
+   private boolean compact = false;
+   private boolean skipUninhabited = false;
+
    //A boolean to keep track of whether or not the profile is loaded from a save or not
    private boolean isNew = true;
    
@@ -36,6 +49,54 @@ public class MBMProfile{
    public void addWorld(File file, String name){
       worlds.add(new MBMWorld(file, name));
    }
+
+   /**
+    * Add many worlds at once (no UI). Worlds that are already in the profile are skipped
+    * and each new world is named after its folder, with a number added if the name is taken.
+    * @param files the Minecraft world files to be backed up
+    * @return the number of worlds added
+    */
+   public int addWorlds(List<File> files){
+      HashSet<String> known = new HashSet<String>();
+      for(int i = 0; i < worlds.size(); i++){
+         known.add(worlds.get(i).getWorldFile().getAbsolutePath());
+      }
+
+      int added = 0;
+      for(File file : files){
+         if(known.add(file.getAbsolutePath()) == false){
+            continue;
+         }
+
+         String name = file.getName();
+         for(int n = 2; isWorldNameNew(name) == false; n++){
+            name = file.getName() + " (" + n + ")";
+         }
+         addWorld(file, name);
+         added++;
+      }
+      return added;
+   }
+
+   /**
+    * Add a folder to search for worlds
+    * @param file the folder to search
+    */
+   public void addSearchRoot(File file){
+      if(searchRoots.contains(file) == false){
+         searchRoots.add(file);
+      }
+   }
+
+   /**
+    * Get the folders to search for worlds, including the default Minecraft saves folders
+    * @return list of folders
+    */
+   public ArrayList<File> getSearchRoots(){
+      ArrayList<File> roots = MBMWorldFinder.defaultRoots();
+      roots.addAll(searchRoots);
+      return roots;
+   }
    
    /**
     * Set the output directory for the profile
@@ -61,6 +122,70 @@ public class MBMProfile{
       return worlds;
    }
    
+   /**
+    * Set whether backups are encrypted
+    * @param encrypt true to encrypt backups
+    */
+   public void setEncrypted(boolean encrypt){
+      this.encrypt = encrypt;
+   }
+
+   /**
+    * Find out if backups are encrypted
+    * @return true if backups are encrypted
+    */
+   public boolean isEncrypted(){
+      return encrypt;
+   }
+
+   /**
+    * Set whether backups check for files changed while they were copied
+    * @param consistent true to check backups
+    */
+   public void setConsistent(boolean consistent){
+      this.consistent = consistent;
+   }
+
+   /**
+    * Find out if backups check for files changed while they were copied
+    * @return true if backups are checked
+    */
+   public boolean isConsistent(){
+      return consistent;
+   }
+
+   /**
+    * Set whether region files are compacted in backups
+    * @param compact true to compact region files
+    */
+   public void setCompacted(boolean compact){
+      this.compact = compact;
+   }
+
+   /**
+    * Find out if region files are compacted in backups
+    * @return true if region files are compacted
+    */
+   public boolean isCompacted(){
+      return compact;
+   }
+
+   /**
+    * Set whether chunks no player has spent time in are left out of compacted region files
+    * @param skipUninhabited true to leave out uninhabited chunks
+    */
+   public void setSkipUninhabited(boolean skipUninhabited){
+      this.skipUninhabited = skipUninhabited;
+   }
+
+   /**
+    * Find out if chunks no player has spent time in are left out of compacted region files
+    * @return true if uninhabited chunks are left out
+    */
+   public boolean isSkipUninhabited(){
+      return skipUninhabited;
+   }
+
    /**
     * Get the output directory
     * @return the output directory file
@@ -82,7 +207,22 @@ public class MBMProfile{
             
             while (line != null) {
                
-               if(line.contains("outDir")){
+               if(line.startsWith("MBMROOT:")){
+                  searchRoots.add(new File(line.substring("MBMROOT:".length())));
+               }
+               else if(line.startsWith("encrypt:")){
+                  encrypt = Boolean.parseBoolean(line.substring("encrypt:".length()));
+               }
+               else if(line.startsWith("consistent:")){
+                  consistent = Boolean.parseBoolean(line.substring("consistent:".length()));
+               }
+               else if(line.startsWith("compact:")){
+                  compact = Boolean.parseBoolean(line.substring("compact:".length()));
+               }
+               else if(line.startsWith("skipUninhabited:")){
+                  skipUninhabited = Boolean.parseBoolean(line.substring("skipUninhabited:".length()));
+               }
+               else if(line.contains("outDir")){
                   String[] result = line.split(":");
                   outputDir = new File(result[1]);
                   if(outputDir.exists() == false){
@@ -131,11 +271,19 @@ public class MBMProfile{
          writer.println("numworlds:" + worlds.size());
          writer.println("lastclosed:" + date.toString());
          writer.println("outDir:"+outputDir.toPath());
+         writer.println("encrypt:"+encrypt);
+         writer.println("consistent:"+consistent);
+         writer.println("compact:"+compact);
+         writer.println("skipUninhabited:"+skipUninhabited);
          
          for(int i = 0; i < worlds.size(); i++){
             
             writer.println("MBMWORLD:"+worlds.get(i).getWorldFile().getName()+":"+worlds.get(i).getName()+":"+worlds.get(i).getWorldFile().toPath()+":"+worlds.get(i).getLastBackupDate());
          }
+
+         for(int i = 0; i < searchRoots.size(); i++){
+            writer.println("MBMROOT:"+searchRoots.get(i).toPath());
+         }
          
          writer.close();
       }catch(FileNotFoundException e){
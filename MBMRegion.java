@@ -0,0 +1,189 @@
+/*
+ * Rewrites Anvil region (.mca) files with their chunks packed together.
+ *
+ * A region file starts with two 4 KiB tables, chunk locations then timestamps, for the
+ * 32x32 chunks it holds. Each location is a 3 byte sector offset and a 1 byte sector count.
+ * A chunk is stored at its offset as a 4 byte length, a compression type and the data.
+ * As chunks grow and shrink the game leaves free sectors behind, which are dropped here.
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.zip.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class MBMRegion{
+
+   //Size of a sector in a region file
+   public static final int sectorSize = 4096;
+
+   //Number of chunks in a region file
+   private static final int chunks = 1024;
+
+   //The InhabitedTime long tag as it appears in a chunk's NBT: type, name length, name
+   private static final byte[] inhabitedTag = { 4, 0, 13, 'I', 'n', 'h', 'a', 'b', 'i', 't', 'e', 'd', 'T', 'i', 'm', 'e' };
+
+   /**
+    * Compact a region file
+    * @param source the region file
+    * @param skipUninhabited true to leave out chunks no player has ever spent time in,
+    *                        the game generates them again when they are next visited
+    * @return the compacted region file, or null if the file is not a region file that can be compacted safely
+    */
+   public static ByteBuffer compact(File source, boolean skipUninhabited) throws IOException {
+      try(FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)){
+         long size = in.size();
+         if(size < sectorSize * 2 || size > Integer.MAX_VALUE){
+            return null;
+         }
+
+         MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+         try{
+            return compact(map, (int) size, skipUninhabited);
+         } catch(InternalError e){
+            //Thrown when the mapped file is cut short underneath us
+            throw new IOException("Region file changed while it was read: " + source);
+         }
+      }
+   }
+
+   /**
+    * Compact a mapped region file
+    * @param map the region file
+    * @param size the size of the region file
+    * @param skipUninhabited true to leave out chunks no player has ever spent time in
+    * @return the compacted region file, or null if it cannot be compacted safely
+    */
+   private static ByteBuffer compact(ByteBuffer map, int size, boolean skipUninhabited) throws IOException {
+      int[] offsets = new int[chunks];
+      int[] lengths = new int[chunks];
+      int total = sectorSize * 2;
+
+      //Read the location table, anything that does not add up is left for a plain copy
+      for(int i = 0; i < chunks; i++){
+         int location = map.getInt(i * 4);
+         if(location == 0){
+            continue;
+         }
+
+         long offset = (long) (location >>> 8) * sectorSize;
+         int sectors = location & 0xFF;
+         if(offset < sectorSize * 2 || offset + 5 > size){
+            return null;
+         }
+         int length = map.getInt((int) offset);
+         if(length < 1 || 4L + length > (long) sectors * sectorSize || offset + 4 + length > size){
+            return null;
+         }
+
+         if(skipUninhabited && isUninhabited(map, (int) offset + 5, length - 1, map.get((int) offset + 4))){
+            continue;
+         }
+
+         offsets[i] = (int) offset;
+         lengths[i] = 4 + length;
+         total += sectorsFor(4 + length) * sectorSize;
+      }
+
+      //Write the chunks one after another, each one still starting on a sector
+      ByteBuffer out = ByteBuffer.allocate(total);
+      int sector = 2;
+      for(int i = 0; i < chunks; i++){
+         if(lengths[i] == 0){
+            continue;
+         }
+
+         int sectors = sectorsFor(lengths[i]);
+         out.putInt(i * 4, (sector << 8) | sectors);
+         out.putInt(sectorSize + i * 4, map.getInt(sectorSize + i * 4));
+
+         ByteBuffer chunk = map.duplicate();
+         chunk.position(offsets[i]).limit(offsets[i] + lengths[i]);
+         out.position(sector * sectorSize);
+         out.put(chunk);
+         sector += sectors;
+      }
+
+      out.position(0).limit(total);
+      return out;
+   }
+
+   /**
+    * Get the number of sectors needed to store a chunk
+    * @param length the chunk's size including its length field
+    * @return number of sectors
+    */
+   private static int sectorsFor(int length){
+      return (length + sectorSize - 1) / sectorSize;
+   }
+
+   /**
+    * Check if a chunk has an InhabitedTime of 0. Chunks that cannot be read, or that are
+    * stored in a way we do not understand, count as inhabited so they are kept.
+    * @param map the region file
+    * @param offset where the chunk's data starts
+    * @param length the size of the chunk's data
+    * @param compression the chunk's compression type
+    * @return true if no player has spent time in the chunk
+    */
+   private static boolean isUninhabited(ByteBuffer map, int offset, int length, byte compression){
+      byte[] data = new byte[length];
+      ByteBuffer chunk = map.duplicate();
+      chunk.position(offset);
+      chunk.get(data);
+
+      byte[] nbt;
+      try{
+         //1 = gzip, 2 = zlib, 3 = uncompressed, anything else (external or LZ4) is kept
+         if(compression == 1){
+            nbt = readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+         }
+         else if(compression == 2){
+            nbt = readAll(new InflaterInputStream(new ByteArrayInputStream(data)));
+         }
+         else if(compression == 3){
+            nbt = data;
+         }
+         else{
+            return false;
+         }
+      } catch(IOException e){
+         return false;
+      }
+
+      for(int i = 0; i + inhabitedTag.length + 8 <= nbt.length; i++){
+         int j = 0;
+         while(j < inhabitedTag.length && nbt[i + j] == inhabitedTag[j]){
+            j++;
+         }
+         if(j == inhabitedTag.length){
+            return ByteBuffer.wrap(nbt, i + j, 8).getLong() == 0;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Read a stream to the end
+    * @param in the stream to read
+    * @return everything in the stream
+    */
+   private static byte[] readAll(InputStream in) throws IOException {
+      try{
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buf = new byte[65536];
+         int length;
+         while ((length = in.read(buf)) > 0){
+            out.write(buf, 0, length);
+         }
+         return out.toByteArray();
+      } finally{
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,256 @@
+/*
+ * Searches save and server folders for Minecraft worlds
+ *
+ * @author Nathan Philliber
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+public class MBMWorldFinder{
+
+   //File the results of earlier searches are kept in
+   public static final String cacheName = "discovery.MBM";
+
+   //How many folders deep to look below a search folder
+   private static final int maxDepth = 4;
+
+   //Folders to search
+   private ArrayList<File> roots;
+
+   //Cached folders that are not worlds for each search folder, folder path -> last modified time
+   private HashMap<String, HashMap<String, Long>> cachedDirs = new HashMap<String, HashMap<String, Long>>();
+
+   //Cached worlds for each search folder
+   private HashMap<String, ArrayList<File>> cachedWorlds = new HashMap<String, ArrayList<File>>();
+
+   //Number of search folders that had to be searched again on the last search
+   private int rescanned = 0;
+
+   /**
+    * Constructor, creates a finder for the given search folders and loads the cache
+    * @param roots the folders to search
+    */
+   public MBMWorldFinder(List<File> roots){
+      this.roots = new ArrayList<File>(roots);
+      loadCache();
+   }
+
+   /**
+    * Get the default Minecraft saves folders for Mac, Windows and Linux
+    * @return list of save folders
+    */
+   public static ArrayList<File> defaultRoots(){
+      String home = System.getProperty("user.home");
+      ArrayList<File> defaults = new ArrayList<File>();
+      defaults.add(new File(home + "/Library/Application Support/minecraft/saves"));
+      defaults.add(new File(home + "/AppData/Roaming/.minecraft/saves"));
+      defaults.add(new File(home + "/.minecraft/saves"));
+      return defaults;
+   }
+
+   /**
+    * Get the number of search folders that changed and were searched again on the last search
+    * @return number of search folders
+    */
+   public int getRescanned(){
+      return rescanned;
+   }
+
+   /**
+    * Find every folder containing a level.dat below the search folders.
+    * Search folders that have not changed since the last search are answered from the cache,
+    * the rest are searched in parallel.
+    * @return list of world folders
+    */
+   public ArrayList<File> findWorlds(){
+      ArrayList<File> worlds = new ArrayList<File>();
+      ArrayList<File> changed = new ArrayList<File>();
+
+      for(File root : roots){
+         String key = root.getAbsolutePath();
+         if(root.isDirectory() == false){
+            cachedDirs.remove(key);
+            cachedWorlds.remove(key);
+         }
+         else if(isCached(key)){
+            worlds.addAll(cachedWorlds.get(key));
+         }
+         else{
+            changed.add(root);
+         }
+      }
+
+      rescanned = changed.size();
+      if(changed.isEmpty()){
+         return worlds;
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+      try{
+         ArrayList<Scan> scans = new ArrayList<Scan>();
+         for(File root : changed){
+            Scan scan = new Scan(root, 0);
+            scans.add(scan);
+            pool.execute(scan);
+         }
+
+         for(int i = 0; i < changed.size(); i++){
+            Scan scan = scans.get(i);
+            scan.join();
+            String key = changed.get(i).getAbsolutePath();
+            cachedDirs.put(key, scan.dirs);
+            cachedWorlds.put(key, scan.worlds);
+            worlds.addAll(scan.worlds);
+         }
+      } finally{
+         pool.shutdown();
+      }
+
+      saveCache();
+      return worlds;
+   }
+
+   /**
+    * Check if none of the folders searched last time below a search folder have changed
+    * @param key the absolute path of the search folder
+    * @return true if the cached result can be used
+    */
+   private boolean isCached(String key){
+      HashMap<String, Long> dirs = cachedDirs.get(key);
+      if(dirs == null || cachedWorlds.containsKey(key) == false){
+         return false;
+      }
+      for(Map.Entry<String, Long> dir : dirs.entrySet()){
+         if(new File(dir.getKey()).lastModified() != dir.getValue()){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Attempt to load earlier results from the discovery.MBM file
+    */
+   private void loadCache(){
+      if((new File(cacheName)).exists() == false){
+         return;
+      }
+
+      try(BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cacheName), "UTF-8"))){
+         String root = null;
+         String line = br.readLine();
+         while(line != null){
+            String[] result = line.split("\t", 3);
+            //ROOT  path
+            //DIR   modified  path
+            //WORLD path
+            if(result[0].equals("ROOT") && result.length == 2){
+               root = result[1];
+               cachedDirs.put(root, new HashMap<String, Long>());
+               cachedWorlds.put(root, new ArrayList<File>());
+            }
+            else if(result[0].equals("DIR") && result.length == 3 && root != null){
+               cachedDirs.get(root).put(result[2], Long.parseLong(result[1]));
+            }
+            else if(result[0].equals("WORLD") && result.length == 2 && root != null){
+               cachedWorlds.get(root).add(new File(result[1]));
+            }
+            line = br.readLine();
+         }
+      } catch(IOException | NumberFormatException e){
+         System.out.println(e);
+         cachedDirs.clear();
+         cachedWorlds.clear();
+      }
+   }
+
+   /**
+    * Write the results to the discovery.MBM file
+    */
+   private void saveCache(){
+      try(PrintWriter writer = new PrintWriter(cacheName, "UTF-8")){
+         for(String root : cachedDirs.keySet()){
+            writer.println("ROOT\t" + root);
+            for(Map.Entry<String, Long> dir : cachedDirs.get(root).entrySet()){
+               writer.println("DIR\t" + dir.getValue() + "\t" + dir.getKey());
+            }
+            for(File world : cachedWorlds.get(root)){
+               writer.println("WORLD\t" + world.getAbsolutePath());
+            }
+         }
+      } catch(IOException e){
+         System.out.println(e);
+      }
+   }
+
+   /**
+    * Searches one folder and forks a search for each of its sub folders
+    */
+   private static class Scan extends RecursiveAction{
+
+      private static final long serialVersionUID = 1L;
+
+      //The folder to search
+      private File dir;
+
+      //How far below the search folder this folder is
+      private int depth;
+
+      //Worlds found below this folder
+      private ArrayList<File> worlds = new ArrayList<File>();
+
+      //Folders searched that are not worlds, path -> last modified time
+      private HashMap<String, Long> dirs = new HashMap<String, Long>();
+
+      /**
+       * Constructor, creates a search of a folder
+       * @param dir the folder to search
+       * @param depth how far below the search folder this folder is
+       */
+      Scan(File dir, int depth){
+         this.dir = dir;
+         this.depth = depth;
+      }
+
+      /**
+       * Search the folder. A folder with a level.dat is a world and is not searched any deeper,
+       * so the DIM-1 and DIM1 folders of a world stay part of that world. Servers that keep the
+       * Nether and End in their own folders (world_nether, world_the_end) give each one a level.dat,
+       * so they are found as worlds of their own.
+       */
+      protected void compute(){
+         if(new File(dir, "level.dat").isFile()){
+            worlds.add(dir.getAbsoluteFile());
+            return;
+         }
+
+         //Record the modified time before listing so a world added during the search is caught next time
+         dirs.put(dir.getAbsolutePath(), dir.lastModified());
+         if(depth >= maxDepth){
+            return;
+         }
+
+         File[] files = dir.listFiles();
+         if(files == null){
+            return;
+         }
+
+         ArrayList<Scan> children = new ArrayList<Scan>();
+         for(File f : files){
+            if(f.isDirectory()){
+               children.add(new Scan(f, depth + 1));
+            }
+         }
+         invokeAll(children);
+
+         for(Scan child : children){
+            worlds.addAll(child.worlds);
+            dirs.putAll(child.dirs);
+         }
+      }
+   }
+}